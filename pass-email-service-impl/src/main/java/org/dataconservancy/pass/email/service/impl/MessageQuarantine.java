@@ -0,0 +1,349 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.email.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of email messages which could not be processed, so that a malformed message costs a bounded amount of
+ * work in total instead of being fetched and parsed again on every run.
+ *
+ * Each failure pushes the next retry further out (the delay doubles with every failure, up to a maximum). Once a
+ * message has failed {@code maxAttempts} times it is quarantined: it is no longer handed out for processing, and it
+ * is moved to the IMAP quarantine folder if one has been configured. Quarantined messages are kept in a local
+ * dead-letter store which can be inspected with {@link #getQuarantinedMessages()}.
+ *
+ * The service keeps the failure count of a message in a keyword on the message itself, and restores it from there
+ * with {@link #restoreFailureCount(String, String, int)}, so that the retry budget survives a restart. The retry
+ * spacing and the dead-letter store are held in memory only; the quarantine folder is the lasting record of dropped
+ * messages.
+ */
+public class MessageQuarantine {
+    private Logger LOG = LoggerFactory.getLogger(MessageQuarantine.class);
+
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long DEFAULT_INITIAL_RETRY_DELAY_MILLIS = 60 * 1000L;
+    static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 6 * 60 * 60 * 1000L;
+    static final String DEFAULT_QUARANTINE_FOLDER = "Quarantine";
+
+    private final int maxAttempts;
+    private final long initialRetryDelayMillis;
+    private final long maxRetryDelayMillis;
+    private final String quarantineFolderName;
+    private final Clock clock;
+
+    private final Map<String, FailureRecord> failures = new LinkedHashMap<>();
+    private final Map<String, FailureRecord> quarantined = new LinkedHashMap<>();
+    private final Set<String> processed = new HashSet<>();
+
+    /**
+     * A quarantine with the default retry budget, moving exhausted messages to the "Quarantine" IMAP folder.
+     */
+    public MessageQuarantine() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_RETRY_DELAY_MILLIS, DEFAULT_MAX_RETRY_DELAY_MILLIS,
+                DEFAULT_QUARANTINE_FOLDER);
+    }
+
+    /**
+     * @param maxAttempts             - the number of failed processing attempts after which a message is quarantined
+     * @param initialRetryDelayMillis - the delay before a message is retried after its first failure
+     * @param maxRetryDelayMillis     - the upper bound on the delay between retries
+     * @param quarantineFolderName    - the name of the IMAP folder exhausted messages are moved to, or null to only
+     *                                  keep them in the local dead-letter store
+     */
+    public MessageQuarantine(int maxAttempts, long initialRetryDelayMillis, long maxRetryDelayMillis,
+                             String quarantineFolderName) {
+        this(maxAttempts, initialRetryDelayMillis, maxRetryDelayMillis, quarantineFolderName, Clock.systemUTC());
+    }
+
+    MessageQuarantine(int maxAttempts, long initialRetryDelayMillis, long maxRetryDelayMillis,
+                      String quarantineFolderName, Clock clock) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, was " + maxAttempts);
+        }
+        if (initialRetryDelayMillis < 0 || maxRetryDelayMillis < initialRetryDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry delays: initial " + initialRetryDelayMillis +
+                    ", maximum " + maxRetryDelayMillis);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialRetryDelayMillis = initialRetryDelayMillis;
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+        this.quarantineFolderName = quarantineFolderName;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the name of the IMAP folder exhausted messages are moved to, or null if none is configured
+     */
+    public String getQuarantineFolderName() {
+        return quarantineFolderName;
+    }
+
+    /**
+     * Record a failed attempt to process a message, and schedule its next retry.
+     *
+     * @param key     the key identifying the message
+     * @param subject the subject of the message, for reporting
+     * @param reason  the reason processing failed
+     */
+    public synchronized void recordFailure(String key, String subject, String reason) {
+        if (quarantined.containsKey(key)) {
+            return;
+        }
+        FailureRecord record = failures.get(key);
+        if (record == null) {
+            record = new FailureRecord(key, subject);
+            failures.put(key, record);
+        }
+        long now = clock.millis();
+        record.failureCount++;
+        record.lastFailure = new Date(now);
+        record.lastError = reason;
+        record.nextRetry = new Date(now + retryDelay(record.failureCount));
+
+        if (isExhausted(key)) {
+            LOG.warn("Message with messageId " + key + " has failed " + record.failureCount +
+                    " times and will be quarantined; last error: " + reason);
+        } else {
+            LOG.warn("Message with messageId " + key + " has failed " + record.failureCount +
+                    " times, next retry after " + record.nextRetry + "; last error: " + reason);
+        }
+    }
+
+    /**
+     * Forget any earlier failures of a message which has now been processed successfully, and remember that it is
+     * to be flagged as processed in the mailbox.
+     *
+     * @param key the key identifying the message
+     */
+    public synchronized void recordSuccess(String key) {
+        failures.remove(key);
+        processed.add(key);
+    }
+
+    /**
+     * @param key the key identifying the message
+     * @return true if the message has been processed successfully since it was last asked for, and is yet to be
+     * flagged as processed in the mailbox
+     */
+    public synchronized boolean takeProcessed(String key) {
+        return processed.remove(key);
+    }
+
+    /**
+     * @param key the key identifying the message
+     * @return the number of failed attempts to process the message known so far
+     */
+    public synchronized int getFailureCount(String key) {
+        FailureRecord record = failures.get(key);
+        return record == null ? 0 : record.failureCount;
+    }
+
+    /**
+     * Restore the failure count of a message from an earlier run. As the time of the last failure is not known, the
+     * message is due for retry straight away.
+     *
+     * @param key          the key identifying the message
+     * @param subject      the subject of the message, for reporting
+     * @param failureCount the number of failed attempts in earlier runs
+     */
+    public synchronized void restoreFailureCount(String key, String subject, int failureCount) {
+        if (quarantined.containsKey(key) || failureCount <= getFailureCount(key)) {
+            return;
+        }
+        FailureRecord record = failures.get(key);
+        if (record == null) {
+            record = new FailureRecord(key, subject);
+            failures.put(key, record);
+        }
+        record.failureCount = failureCount;
+        record.lastError = "failed in an earlier run";
+        record.nextRetry = new Date(clock.millis());
+        LOG.info("Message with messageId " + key + " restored with " + failureCount + " earlier failures");
+    }
+
+    /**
+     * Forget the outcomes of messages which are no longer candidates for processing - e.g. because they have been
+     * flagged as SEEN, or removed from the mailbox - so that their records do not accumulate.
+     *
+     * @param keys the keys of the messages which are still candidates for processing
+     */
+    public synchronized void retainOnly(Collection<String> keys) {
+        failures.keySet().retainAll(keys);
+        processed.retainAll(keys);
+    }
+
+    /**
+     * @param key the key identifying the message
+     * @return true if the message has used up its retry budget and should be quarantined
+     */
+    public synchronized boolean isExhausted(String key) {
+        FailureRecord record = failures.get(key);
+        return record != null && record.failureCount >= maxAttempts;
+    }
+
+    /**
+     * @param key the key identifying the message
+     * @return true if the message may be handed out for processing now
+     */
+    public synchronized boolean isRetryDue(String key) {
+        if (quarantined.containsKey(key)) {
+            return false;
+        }
+        FailureRecord record = failures.get(key);
+        return record == null || !record.nextRetry.after(new Date(clock.millis()));
+    }
+
+    /**
+     * @param key the key identifying the message
+     * @return true if the message is in the dead-letter store
+     */
+    public synchronized boolean isQuarantined(String key) {
+        return quarantined.containsKey(key);
+    }
+
+    /**
+     * Move an exhausted message into the local dead-letter store.
+     *
+     * @param key   the key identifying the message
+     * @param moved true if the message was also moved to the IMAP quarantine folder
+     */
+    public synchronized void quarantine(String key, boolean moved) {
+        FailureRecord record = failures.remove(key);
+        if (record == null) {
+            return;
+        }
+        record.quarantinedDate = new Date(clock.millis());
+        record.movedToFolder = moved;
+        record.nextRetry = null;
+        quarantined.put(key, record);
+        LOG.warn("Message with messageId " + key + " quarantined after " + record.failureCount +
+                " failed attempts" + (moved ? ", moved to folder " + quarantineFolderName : "") +
+                "; last error: " + record.lastError);
+    }
+
+    /**
+     * @return a report of the messages currently in the dead-letter store, in the order they were quarantined
+     */
+    public synchronized List<FailureRecord> getQuarantinedMessages() {
+        List<FailureRecord> report = new ArrayList<>();
+        for (FailureRecord record : quarantined.values()) {
+            report.add(new FailureRecord(record));
+        }
+        return Collections.unmodifiableList(report);
+    }
+
+    /**
+     * The delay before the next retry doubles with every failure, starting at the initial delay and capped at the
+     * maximum delay.
+     *
+     * @param failureCount the number of failures so far
+     * @return the delay in milliseconds
+     */
+    long retryDelay(int failureCount) {
+        long delay = initialRetryDelayMillis;
+        for (int i = 1; i < failureCount && delay < maxRetryDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxRetryDelayMillis);
+    }
+
+    /**
+     * The processing history of a message which has failed at least once.
+     */
+    public static class FailureRecord {
+        private final String key;
+        private final String subject;
+        private int failureCount;
+        private Date lastFailure;
+        private String lastError;
+        private Date nextRetry;
+        private Date quarantinedDate;
+        private boolean movedToFolder;
+
+        FailureRecord(String key, String subject) {
+            this.key = key;
+            this.subject = subject;
+        }
+
+        FailureRecord(FailureRecord other) {
+            this(other.key, other.subject);
+            this.failureCount = other.failureCount;
+            this.lastFailure = other.lastFailure;
+            this.lastError = other.lastError;
+            this.nextRetry = other.nextRetry;
+            this.quarantinedDate = other.quarantinedDate;
+            this.movedToFolder = other.movedToFolder;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        public Date getLastFailure() {
+            return lastFailure;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public Date getNextRetry() {
+            return nextRetry;
+        }
+
+        public Date getQuarantinedDate() {
+            return quarantinedDate;
+        }
+
+        public boolean isMovedToFolder() {
+            return movedToFolder;
+        }
+
+        @Override
+        public String toString() {
+            return "FailureRecord{" +
+                    "key='" + key + '\'' +
+                    ", subject='" + subject + '\'' +
+                    ", failureCount=" + failureCount +
+                    ", lastFailure=" + lastFailure +
+                    ", lastError='" + lastError + '\'' +
+                    ", quarantinedDate=" + quarantinedDate +
+                    ", movedToFolder=" + movedToFolder +
+                    '}';
+        }
+    }
+}
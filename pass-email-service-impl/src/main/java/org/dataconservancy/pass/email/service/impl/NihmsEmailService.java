@@ -15,6 +15,8 @@
  */
 package org.dataconservancy.pass.email.service.impl;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 import org.dataconservancy.pass.email.service.model.NihmsSubmissionMessage;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -24,21 +26,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.WeakHashMap;
 
 import javax.mail.Flags;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Header;
 import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.search.SearchTerm;
 import javax.mail.search.SubjectTerm;
@@ -53,21 +65,65 @@ public class NihmsEmailService {
     private static final String NIHMS_ID_KEY = "ID=";
     private static final String SUBJECT_SEARCH_STRING = "Bulk submission";
 
+    private static final String DEFAULT_SOCKET_FACTORY_CLASS = "javax.net.ssl.SSLSocketFactory";
+    private static final String FAILURE_KEYWORD_PREFIX = "pass-failures-";
+
+    private final MessageQuarantine quarantine;
+    private final String socketFactoryClass;
+    //quarantine keys of the messages handed out for processing - detached copies no longer know their folder or UID
+    private final Map<Message, String> quarantineKeys = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public NihmsEmailService() {
+        this(new MessageQuarantine());
+    }
+
+    /**
+     * @param quarantine - keeps track of messages which could not be processed, and decides when they are retried
+     */
+    public NihmsEmailService(MessageQuarantine quarantine) {
+        this(quarantine, DEFAULT_SOCKET_FACTORY_CLASS);
+    }
+
+    /**
+     * @param quarantine         - keeps track of messages which could not be processed
+     * @param socketFactoryClass - the class of the socket factory used to connect to the message store
+     */
+    NihmsEmailService(MessageQuarantine quarantine, String socketFactoryClass) {
+        this.quarantine = quarantine;
+        this.socketFactoryClass = socketFactoryClass;
+    }
+
+    /**
+     * @return the quarantine used by this service, e.g. to report on the messages which could not be processed
+     */
+    public MessageQuarantine getQuarantine() {
+        return quarantine;
+    }
+
     private Properties serverProperties(String protocol, String host, String port) {
         Properties props = new Properties();
         props.put(String.format("mail.%s.host", protocol), host);
         props.put(String.format("mail.%s.port", protocol), port);
-        props.setProperty(String.format("mail.%s.socketFactory.class", protocol), "javax.net.ssl.SSLSocketFactory");
+        props.setProperty(String.format("mail.%s.socketFactory.class", protocol), socketFactoryClass);
         props.setProperty(String.format("mail.%s.socketFactory.fallback", protocol), "false");
         props.setProperty(String.format("mail.%s.socketFactory.port", protocol), String.valueOf(port));
+        //don't let fetching a message flag it as SEEN - messages are only flagged once they have been processed
+        props.setProperty(String.format("mail.%s.peek", protocol), "true");
 
         return props;
     }
 
     /**
      * This method is responsible for retrieving the emails from the appropriate inbox, and extracting all
-     * messages which need to be processed. Emails indicating successful submissions will be flagged as SEEN, so that
-     * they will not be processed on the next run.
+     * messages which need to be processed. Messages which previously failed processing are only returned once
+     * their retry is due; messages which have used up their retry budget are moved to the quarantine folder, if one
+     * is configured, and flagged as SEEN. The messages returned are detached copies, so that they can still be read
+     * after the connection to the message store has been closed.
+     *
+     * The outcome of processing the returned messages with {@link #processMessage(Message)} is written back to the
+     * mailbox on the next call: messages processed successfully are then flagged as SEEN, so that they will not be
+     * processed again. Use {@link #processEmails(String, String, String, String, String)} to have the outcome
+     * written back right away.
      *
      * @param protocol - the mail transport protocol used to connect
      * @param host     - the host to connect to
@@ -78,29 +134,82 @@ public class NihmsEmailService {
      */
     public List<Message> getEmails(String protocol, String host, String port, String userName, String password) {
         Properties props = serverProperties(protocol, host, port);
-        Session session = Session.getDefaultInstance(props);
+        Session session = Session.getInstance(props);
         List<Message> messagesToBeProcessed = new ArrayList<>();
 
-        try (Store store = session.getStore(protocol);
-             Folder inbox = store.getFolder("INBOX")
-        ) {
-            store.connect(userName, password);
+        try (Store store = connectStore(session, protocol, userName, password)) {
+            Folder inbox = store.getFolder("INBOX");
             inbox.open(Folder.READ_WRITE);
+            try {
+                for (Message message : selectMessages(store, inbox)) {
+                    String key = quarantineKey(message);
+                    Message detached;
+                    try {
+                        detached = message instanceof MimeMessage ? new MimeMessage((MimeMessage) message) : message;
+                    } catch (MessagingException e) {
+                        if (isTransient(message, e)) {
+                            LOG.warn("Unable to fetch message " + key + ", it will be retried on the next run ", e);
+                        } else {
+                            LOG.error("Unable to fetch message " + key + " ", e);
+                            recordFailure(key, message, e.toString());
+                            writeOutcome(message, key);
+                        }
+                        continue;
+                    }
+                    if (key != null) {
+                        quarantineKeys.put(detached, key);
+                    }
+                    messagesToBeProcessed.add(detached);
+                    LOG.info("Message " + key + " added to message processing list.");
+                }
+            } finally {
+                inbox.close(false);//don't expunge messages which other clients have flagged as DELETED
+            }
 
-            SearchTerm searchTerm = new SubjectTerm(SUBJECT_SEARCH_STRING);
-            Message[] messageArray = inbox.search(searchTerm);
+        } catch (NoSuchProviderException e) {
+            LOG.error("No such provider for protocol: " + protocol);
+            e.printStackTrace();
+        } catch (MessagingException e) {
+            LOG.error("Unable to connect to the message store");
+            e.printStackTrace();
+        }
+        return messagesToBeProcessed;
+    }
 
-            for (Message message : messageArray) {
-                boolean isSuccess = message.getSubject().endsWith(SUCCESS_CRITERION);
-                if (!message.getFlags().contains(Flags.Flag.SEEN)) {
-                    if (isSuccess) {
-                        message.setFlag(Flags.Flag.SEEN, isSuccess);
+    /**
+     * Retrieve the emails which need to be processed, as {@link #getEmails(String, String, String, String, String)}
+     * does, and process them while still connected to the message store. Messages processed successfully are flagged
+     * as SEEN right away, and messages which use up their retry budget are quarantined in the same run.
+     *
+     * @param protocol - the mail transport protocol used to connect
+     * @param host     - the host to connect to
+     * @param port     - the port on the host to connect to
+     * @param userName - the name of the user on the mail account to be read
+     * @param password - the password for the user of the mail account
+     * @return a List of SubmissionMessages to be put in a message queue
+     */
+    public List<NihmsSubmissionMessage> processEmails(String protocol, String host, String port, String userName,
+                                                      String password) {
+        Properties props = serverProperties(protocol, host, port);
+        Session session = Session.getInstance(props);
+        List<NihmsSubmissionMessage> submissionMessages = new ArrayList<>();
+
+        try (Store store = connectStore(session, protocol, userName, password)) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_WRITE);
+            try {
+                List<Message> exhausted = new ArrayList<>();
+                for (Message message : selectMessages(store, inbox)) {
+                    submissionMessages.addAll(processMessage(message));
+                    String key = quarantineKey(message);
+                    writeOutcome(message, key);
+                    if (key != null && quarantine.isExhausted(key)) {
+                        exhausted.add(message);
                     }
-                    messagesToBeProcessed.add(message);
-                    LOG.info("Message with massageId " +
-                            getHeaderValue(message.getAllHeaders(), MESSAGE_ID_HEADER_KEY) +
-                            " added to message processing list.");
                 }
+                quarantineMessages(store, inbox, exhausted);
+            } finally {
+                inbox.close(false);//don't expunge messages which other clients have flagged as DELETED
             }
 
         } catch (NoSuchProviderException e) {
@@ -110,7 +219,191 @@ public class NihmsEmailService {
             LOG.error("Unable to connect to the message store");
             e.printStackTrace();
         }
-        return messagesToBeProcessed;
+        return submissionMessages;
+    }
+
+    /**
+     * Connect to the message store - this has to happen before any of its folders can be opened
+     *
+     * @param session  the mail session
+     * @param protocol the mail transport protocol used to connect
+     * @param userName the name of the user on the mail account to be read
+     * @param password the password for the user of the mail account
+     * @return the connected store
+     * @throws MessagingException if the store cannot be connected to
+     */
+    private Store connectStore(Session session, String protocol, String userName, String password)
+            throws MessagingException {
+        Store store = session.getStore(protocol);
+        store.connect(userName, password);
+        return store;
+    }
+
+    /**
+     * Select the unseen messages matching our subject search string which are due for processing. Along the way the
+     * outcome of earlier processing is written back to the mailbox, and messages which have used up their retry
+     * budget are quarantined.
+     *
+     * @param store the connected message store
+     * @param inbox the open inbox
+     * @return the messages to be processed
+     * @throws MessagingException if the inbox cannot be searched
+     */
+    private List<Message> selectMessages(Store store, Folder inbox) throws MessagingException {
+        SearchTerm searchTerm = new SubjectTerm(SUBJECT_SEARCH_STRING);
+        Message[] messageArray = inbox.search(searchTerm);
+        List<Message> selected = new ArrayList<>();
+        List<Message> exhausted = new ArrayList<>();
+        List<String> candidateKeys = new ArrayList<>();
+
+        for (Message message : messageArray) {
+            if (message.getFlags().contains(Flags.Flag.SEEN)) {
+                continue;
+            }
+            String key = quarantineKey(inbox, message);
+            if (key != null) {
+                candidateKeys.add(key);
+                if (writeOutcome(message, key)) {//processed successfully last time
+                    continue;
+                }
+                if (quarantine.isExhausted(key)) {
+                    exhausted.add(message);
+                    continue;
+                }
+                if (!quarantine.isRetryDue(key)) {
+                    LOG.debug("Message " + key + " is not due for retry, skipping.");
+                    continue;
+                }
+                quarantineKeys.put(message, key);
+            }
+            selected.add(message);
+        }
+        //forget outcomes of messages which have been seen or removed since
+        quarantine.retainOnly(candidateKeys);
+        quarantineMessages(store, inbox, exhausted);
+
+        return selected;
+    }
+
+    /**
+     * Write what is known about a message back to the mailbox: a message processed successfully is flagged as SEEN,
+     * and the failure count of a message which failed is kept in a keyword on the message, so that it survives a
+     * restart. A failure count found on the message which is higher than the one known is restored into the
+     * quarantine.
+     *
+     * @param message the message
+     * @param key     the quarantine key of the message, may be null
+     * @return true if the message was flagged as SEEN
+     */
+    private boolean writeOutcome(Message message, String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            if (quarantine.takeProcessed(key)) {
+                message.setFlag(Flags.Flag.SEEN, true);
+                return true;
+            }
+            int stored = storedFailureCount(message);
+            int known = quarantine.getFailureCount(key);
+            if (stored > known) {
+                quarantine.restoreFailureCount(key, message.getSubject(), stored);
+            } else if (known > stored) {
+                if (stored > 0) {
+                    message.setFlags(new Flags(FAILURE_KEYWORD_PREFIX + stored), false);
+                }
+                message.setFlags(new Flags(FAILURE_KEYWORD_PREFIX + known), true);
+            }
+        } catch (MessagingException e) {
+            LOG.error("Unable to update flags of message " + key, e);
+        }
+        return false;
+    }
+
+    /**
+     * @param message the message
+     * @return the failure count kept in a keyword on the message, or 0 if there is none
+     * @throws MessagingException if the flags of the message cannot be read
+     */
+    private int storedFailureCount(Message message) throws MessagingException {
+        int count = 0;
+        for (String keyword : message.getFlags().getUserFlags()) {
+            if (keyword.startsWith(FAILURE_KEYWORD_PREFIX)) {
+                try {
+                    count = Math.max(count, Integer.parseInt(keyword.substring(FAILURE_KEYWORD_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring malformed keyword " + keyword);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Take messages which have used up their retry budget out of circulation. They are flagged as SEEN, recorded in
+     * the local dead-letter store and, if a quarantine folder is configured, moved there.
+     *
+     * @param store     the connected message store
+     * @param inbox     the open inbox holding the messages
+     * @param exhausted the messages to quarantine
+     */
+    private void quarantineMessages(Store store, Folder inbox, List<Message> exhausted) {
+        if (exhausted.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        for (Message message : exhausted) {
+            String key = quarantineKey(inbox, message);
+            keys.add(key);
+            try {
+                message.setFlag(Flags.Flag.SEEN, true);
+            } catch (MessagingException e) {
+                LOG.error("Unable to flag message " + key + " as seen", e);
+            }
+        }
+
+        boolean moved = false;
+        String folderName = quarantine.getQuarantineFolderName();
+        if (folderName != null) {
+            try {
+                Folder quarantineFolder = store.getFolder(folderName);
+                if (!quarantineFolder.exists()) {
+                    quarantineFolder.create(Folder.HOLDS_MESSAGES);
+                }
+                moveMessages(store, inbox, exhausted.toArray(new Message[0]), quarantineFolder);
+                moved = true;
+            } catch (MessagingException e) {
+                LOG.error("Unable to move messages " + keys + " to folder " + folderName, e);
+            }
+        }
+        for (String key : keys) {
+            quarantine.quarantine(key, moved);
+        }
+    }
+
+    /**
+     * Move messages to another folder, with IMAP MOVE where the server supports it. Otherwise the messages are copied
+     * and flagged as DELETED, and only these messages are expunged - other messages flagged as DELETED are left alone.
+     *
+     * @param store    the connected message store
+     * @param from     the open folder holding the messages
+     * @param messages the messages to move
+     * @param to       the folder to move the messages to
+     * @throws MessagingException if the messages cannot be moved
+     */
+    private void moveMessages(Store store, Folder from, Message[] messages, Folder to) throws MessagingException {
+        if (from instanceof IMAPFolder && store instanceof IMAPStore && ((IMAPStore) store).hasCapability("MOVE")) {
+            ((IMAPFolder) from).moveMessages(messages, to);
+            return;
+        }
+        from.copyMessages(messages, to);
+        from.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+        if (from instanceof IMAPFolder && store instanceof IMAPStore && ((IMAPStore) store).hasCapability("UIDPLUS")) {
+            ((IMAPFolder) from).expunge(messages);
+        } else {
+            LOG.warn("Unable to expunge single messages from " + from.getFullName() +
+                    ", moved messages are left there flagged as DELETED");
+        }
     }
 
     /**
@@ -122,17 +415,23 @@ public class NihmsEmailService {
      */
     List<NihmsSubmissionMessage> processMessage(Message message) {
         List<NihmsSubmissionMessage> submissionMessageList = new ArrayList<>();
+        String key = quarantineKey(message);
         try {
             Object content = message.getContent();
             if (content instanceof MimeMultipart) {//have html to parse
                 MimeMultipart mmp = (MimeMultipart) content;
-                String bodyPart = (String) mmp.getBodyPart(0).getContent();
+                Object bodyContent = mmp.getBodyPart(0).getContent();
                 for (int i = 0; i < mmp.getCount(); i++) {
-                    if (mmp.getBodyPart(i).getContentType().contains("text/html")) {
-                        bodyPart = (String) mmp.getBodyPart(i).getContent();
+                    if (mmp.getBodyPart(i).isMimeType("text/html")) {//IMAP may report the type in upper case
+                        bodyContent = mmp.getBodyPart(i).getContent();
                         break;
                     }
                 }
+                if (!(bodyContent instanceof String)) {
+                    recordFailure(key, message, unexpectedContent(bodyContent));
+                    return submissionMessageList;
+                }
+                String bodyPart = (String) bodyContent;
                 //repair some escaped stuff to fix parsing issues
                 bodyPart = bodyPart.replace("&gt;", ">").replace("&lt;", "<")
                         .replace("&quot;", "\"");
@@ -144,6 +443,10 @@ public class NihmsEmailService {
                     }
                 }
             } else {//this is a plain text email message
+                if (!(content instanceof String)) {
+                    recordFailure(key, message, unexpectedContent(content));
+                    return submissionMessageList;
+                }
                 Scanner scanner = new Scanner((String) content);//we'll go line by line
                 scanner.useDelimiter("\\r?\\n");
                 String line;
@@ -163,11 +466,18 @@ public class NihmsEmailService {
                 }
                 scanner.close();
             }
+            if (key != null) {
+                quarantine.recordSuccess(key);
+            }
 
-        } catch (MessagingException e) {
-            LOG.error("Messaging Exception ", e);
-        } catch (IOException e) {
-           LOG.error("IO Exception ", e);
+        } catch (MessagingException | IOException e) {
+            submissionMessageList.clear();
+            if (isTransient(message, e)) {//not the message's fault, don't count it against the retry budget
+                LOG.warn("Unable to read message, it will be retried on the next run ", e);
+            } else {
+                LOG.error("Unable to parse message ", e);
+                recordFailure(key, message, e.toString());
+            }
         }
 
         return submissionMessageList;
@@ -228,6 +538,103 @@ public class NihmsEmailService {
         return sm;
     }
 
+    /**
+     * Record a failed processing attempt with the quarantine
+     *
+     * @param key the quarantine key of the message, may be null
+     * @param message the message which failed processing
+     * @param reason the reason processing failed
+     */
+    private void recordFailure(String key, Message message, String reason) {
+        if (key == null) {
+            LOG.warn("Unable to identify failed message, it will not be tracked for quarantine");
+            return;
+        }
+        String subject = null;
+        try {
+            subject = message.getSubject();
+        } catch (MessagingException e) {
+            LOG.debug("Unable to read subject of failed message " + key, e);
+        }
+        quarantine.recordFailure(key, subject, reason);
+    }
+
+    /**
+     * @param content the content found in place of the expected text
+     * @return a description of the unexpected content, for the quarantine report
+     */
+    private String unexpectedContent(Object content) {
+        return "Expected text content but found " + (content == null ? "no content" : content.getClass().getName());
+    }
+
+    /**
+     * Decide whether an exception raised while processing a message was caused by the connection to the message
+     * store rather than by the message itself
+     *
+     * @param message the message being processed
+     * @param e the exception raised
+     * @return true if the failure should not be counted against the message
+     */
+    private boolean isTransient(Message message, Exception e) {
+        if (message.getFolder() != null && !message.getFolder().isOpen()) {//content can't be loaded lazily anymore
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof FolderClosedException || t instanceof StoreClosedException ||
+                    t instanceof MessageRemovedException || t instanceof SocketException ||
+                    t instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The key used to track a message in the quarantine - the IMAP UID of the message, which is unique and stable
+     * within the mailbox, or the Message-ID header if the folder has no UIDs
+     *
+     * @param folder the open folder holding the message
+     * @param message the email message
+     * @return the key, or null if the message cannot be identified
+     */
+    private String quarantineKey(Folder folder, Message message) {
+        if (folder instanceof UIDFolder) {
+            try {
+                UIDFolder uidFolder = (UIDFolder) folder;
+                return "uid:" + uidFolder.getUIDValidity() + ":" + uidFolder.getUID(message);
+            } catch (MessagingException e) {
+                LOG.error("Unable to read UID of message ", e);
+            }
+        }
+        return messageId(message);
+    }
+
+    /**
+     * The key a message was handed out for processing with, or its Message-ID header if it was not handed out by
+     * this service
+     *
+     * @param message the email message
+     * @return the key, or null if the message cannot be identified
+     */
+    private String quarantineKey(Message message) {
+        String key = quarantineKeys.get(message);
+        return key != null ? key : messageId(message);
+    }
+
+    /**
+     * @param message the email message
+     * @return the Message-ID header of the message, or null if it has none
+     */
+    private String messageId(Message message) {
+        try {
+            String[] messageIds = message.getHeader(MESSAGE_ID_HEADER_KEY);
+            return messageIds != null && messageIds.length > 0 ? messageIds[0] : null;
+        } catch (MessagingException e) {
+            LOG.error("Unable to read headers of message ", e);
+            return null;
+        }
+    }
+
     /**
      * a convenience method to grab a mail header value
      * @param headers the list of headers in the message
@@ -237,7 +644,7 @@ public class NihmsEmailService {
     private String getHeaderValue (Enumeration<Header> headers, String key) {
         while (headers.hasMoreElements()) {
             Header header = headers.nextElement();
-            if(header.getName().equals(key)){
+            if(header.getName().equalsIgnoreCase(key)){//header names are case-insensitive
                 return header.getValue();
             }
         }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.email.service.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageQuarantineTest {
+
+    private static final String KEY = "<20180620013010.32F071A0010@mail2.ncbi.nlm.nih.gov>";
+    private static final long INITIAL_DELAY = 1000L;
+    private static final long MAX_DELAY = 5000L;
+
+    private MutableClock clock;
+    private MessageQuarantine underTest;
+
+    @Before
+    public void setup() {
+        clock = new MutableClock();
+        underTest = new MessageQuarantine(3, INITIAL_DELAY, MAX_DELAY, "Quarantine", clock);
+    }
+
+    @Test
+    public void testRetryDelayDoublesUpToMaximum() {
+        assertEquals(1000L, underTest.retryDelay(1));
+        assertEquals(2000L, underTest.retryDelay(2));
+        assertEquals(4000L, underTest.retryDelay(3));
+        assertEquals(5000L, underTest.retryDelay(4));
+        assertEquals(5000L, underTest.retryDelay(40));
+    }
+
+    @Test
+    public void testFailedMessageIsNotRetriedUntilDue() {
+        assertTrue(underTest.isRetryDue(KEY));
+
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        assertFalse(underTest.isRetryDue(KEY));
+        clock.advance(INITIAL_DELAY);
+        assertTrue(underTest.isRetryDue(KEY));
+
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        clock.advance(INITIAL_DELAY);
+        assertFalse(underTest.isRetryDue(KEY));
+        clock.advance(INITIAL_DELAY);
+        assertTrue(underTest.isRetryDue(KEY));
+        assertFalse(underTest.isExhausted(KEY));
+    }
+
+    @Test
+    public void testSuccessClearsFailures() {
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        underTest.recordSuccess(KEY);
+        assertTrue(underTest.isRetryDue(KEY));
+        assertFalse(underTest.isExhausted(KEY));
+        assertEquals(0, underTest.getFailureCount(KEY));
+
+        //the success is handed out once, to be written back to the mailbox
+        assertTrue(underTest.takeProcessed(KEY));
+        assertFalse(underTest.takeProcessed(KEY));
+    }
+
+    @Test
+    public void testRestoredFailureCountCountsTowardsBudget() {
+        underTest.restoreFailureCount(KEY, "Bulk submission", 2);
+        assertEquals(2, underTest.getFailureCount(KEY));
+        assertTrue(underTest.isRetryDue(KEY));
+        assertFalse(underTest.isExhausted(KEY));
+
+        //a lower count than the one known is ignored
+        underTest.restoreFailureCount(KEY, "Bulk submission", 1);
+        assertEquals(2, underTest.getFailureCount(KEY));
+
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        assertTrue(underTest.isExhausted(KEY));
+    }
+
+    @Test
+    public void testExhaustedMessageIsQuarantinedAndReported() {
+        for (int i = 0; i < 3; i++) {
+            underTest.recordFailure(KEY, "Bulk submission", "boom " + i);
+        }
+        assertTrue(underTest.isExhausted(KEY));
+        assertTrue(underTest.getQuarantinedMessages().isEmpty());
+
+        underTest.quarantine(KEY, true);
+        assertTrue(underTest.isQuarantined(KEY));
+        assertFalse(underTest.isExhausted(KEY));
+        clock.advance(MAX_DELAY);
+        assertFalse(underTest.isRetryDue(KEY));
+
+        List<MessageQuarantine.FailureRecord> report = underTest.getQuarantinedMessages();
+        assertEquals(1, report.size());
+        MessageQuarantine.FailureRecord record = report.get(0);
+        assertEquals(KEY, record.getKey());
+        assertEquals("Bulk submission", record.getSubject());
+        assertEquals(3, record.getFailureCount());
+        assertEquals("boom 2", record.getLastError());
+        assertTrue(record.isMovedToFolder());
+
+        //further failures of a quarantined message are ignored
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        assertEquals(3, underTest.getQuarantinedMessages().get(0).getFailureCount());
+    }
+
+    @Test
+    public void testRetainOnlyForgetsMessagesNoLongerInCirculation() {
+        String otherKey = "<20180620201517.E01801A0003@mail2.ncbi.nlm.nih.gov>";
+        underTest.recordFailure(KEY, "Bulk submission", "boom");
+        underTest.recordFailure(otherKey, "Bulk submission", "boom");
+
+        underTest.recordSuccess("<processed@mail2.ncbi.nlm.nih.gov>");
+
+        underTest.retainOnly(Collections.singletonList(otherKey));
+        assertTrue(underTest.isRetryDue(KEY));
+        assertFalse(underTest.isRetryDue(otherKey));
+        assertFalse(underTest.takeProcessed("<processed@mail2.ncbi.nlm.nih.gov>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxAttempts() {
+        new MessageQuarantine(0, INITIAL_DELAY, MAX_DELAY, null);
+    }
+
+    private static class MutableClock extends Clock {
+        private long millis = 1529458210000L;
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.pass.email.service.impl;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.DummySSLSocketFactory;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import org.dataconservancy.pass.email.service.model.NihmsSubmissionMessage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the quarantine against a GreenMail IMAP server, covering the mailbox side of {@link MessageQuarantine}
+ */
+public class NihmsEmailServiceQuarantineTest {
+
+    private static final String PROTOCOL = "imaps";
+    private static final String HOST = "localhost";
+    private static final String PORT = String.valueOf(ServerSetupTest.IMAPS.getPort());
+    private static final String USER = "nihms@example.org";
+    private static final String PASSWORD = "secret";
+    private static final String QUARANTINE_FOLDER = "Quarantine";
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static final String MALFORMED_MESSAGE_ID = "<20180626010203.ABCDEF01234@mail2.ncbi.nlm.nih.gov>";
+    private static final String VALID_MESSAGE_ID = "<20180620013010.32F071A0010@mail2.ncbi.nlm.nih.gov>";
+    private static final String OTHER_VALID_MESSAGE_ID = "<20180620201517.E01801A0003@mail2.ncbi.nlm.nih.gov>";
+
+    @Rule
+    public final GreenMailRule greenMail = new GreenMailRule(ServerSetupTest.IMAPS);
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private GreenMailUser user;
+
+    @Before
+    public void setup() throws MessagingException {
+        user = greenMail.setUser(USER, USER, PASSWORD);
+    }
+
+    @Test
+    public void testExhaustedMessageIsMovedToQuarantineFolder() throws MessagingException {
+        deliverMalformed("Bulk submission errors", MALFORMED_MESSAGE_ID);
+        deliverFile("messages/NIHMS-failure-1.txt");
+        NihmsEmailService underTest = newService(new MessageQuarantine(2, 0, 0, QUARANTINE_FOLDER));
+
+        assertEquals(Arrays.asList(MALFORMED_MESSAGE_ID, VALID_MESSAGE_ID), runPass(underTest));
+        //the valid message is flagged as SEEN now that it has been processed
+        assertEquals(Arrays.asList(MALFORMED_MESSAGE_ID), runPass(underTest));
+
+        //another client flags the processed message for deletion; it must survive the quarantine
+        try (Store store = connect()) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_WRITE);
+            findMessage(inbox, VALID_MESSAGE_ID).setFlag(Flags.Flag.DELETED, true);
+            inbox.close(false);
+        }
+        deliverFile("messages/NIHMS-failure-2.txt");
+
+        //budget used up - new valid messages are still returned, the malformed one is not
+        assertEquals(Arrays.asList(OTHER_VALID_MESSAGE_ID), runPass(underTest));
+
+        try (Store store = connect()) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            assertEquals(2, inbox.getMessageCount());
+            assertTrue(findMessage(inbox, VALID_MESSAGE_ID).getFlags().contains(Flags.Flag.DELETED));
+            assertNull(findMessage(inbox, MALFORMED_MESSAGE_ID));
+            inbox.close(false);
+
+            Folder quarantine = store.getFolder(QUARANTINE_FOLDER);
+            assertTrue(quarantine.exists());
+            quarantine.open(Folder.READ_ONLY);
+            assertEquals(1, quarantine.getMessageCount());
+            assertEquals(MALFORMED_MESSAGE_ID, quarantine.getMessage(1).getHeader("Message-ID")[0]);
+            quarantine.close(false);
+        }
+
+        List<MessageQuarantine.FailureRecord> report = underTest.getQuarantine().getQuarantinedMessages();
+        assertEquals(1, report.size());
+        assertEquals("Bulk submission errors", report.get(0).getSubject());
+        assertEquals(2, report.get(0).getFailureCount());
+        assertTrue(report.get(0).isMovedToFolder());
+    }
+
+    @Test
+    public void testMalformedSuccessMessageIsQuarantined() throws MessagingException {
+        deliverMalformed("Bulk submission submitted", MALFORMED_MESSAGE_ID);
+        deliverFile("messages/NIHMS-success.txt");
+        NihmsEmailService underTest = newService(new MessageQuarantine(2, 0, 0, QUARANTINE_FOLDER));
+
+        //the valid success message is processed and flagged as SEEN in the same run
+        List<NihmsSubmissionMessage> results = underTest.processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSubmitted());
+        assertTrue(underTest.processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD).isEmpty());
+
+        try (Store store = connect()) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            assertEquals(1, inbox.getMessageCount());
+            assertTrue(inbox.getMessage(1).getFlags().contains(Flags.Flag.SEEN));
+            inbox.close(false);
+
+            Folder quarantine = store.getFolder(QUARANTINE_FOLDER);
+            quarantine.open(Folder.READ_ONLY);
+            assertEquals(1, quarantine.getMessageCount());
+            assertEquals(MALFORMED_MESSAGE_ID, quarantine.getMessage(1).getHeader("Message-ID")[0]);
+            quarantine.close(false);
+        }
+
+        List<MessageQuarantine.FailureRecord> report = underTest.getQuarantine().getQuarantinedMessages();
+        assertEquals(1, report.size());
+        assertEquals("Bulk submission submitted", report.get(0).getSubject());
+    }
+
+    @Test
+    public void testMessageWithoutMessageIdIsQuarantined() throws MessagingException {
+        deliverMalformed("Bulk submission errors", null);
+        NihmsEmailService underTest = newService(new MessageQuarantine(2, 0, 0, QUARANTINE_FOLDER));
+
+        assertEquals(1, runPass(underTest).size());
+        assertEquals(1, runPass(underTest).size());
+        assertTrue(runPass(underTest).isEmpty());
+
+        List<MessageQuarantine.FailureRecord> report = underTest.getQuarantine().getQuarantinedMessages();
+        assertEquals(1, report.size());
+        assertTrue(report.get(0).getKey().startsWith("uid:"));
+        assertTrue(report.get(0).isMovedToFolder());
+    }
+
+    @Test
+    public void testFailureCountSurvivesRestart() throws MessagingException {
+        deliverMalformed("Bulk submission errors", MALFORMED_MESSAGE_ID);
+
+        newService(new MessageQuarantine(3, HOUR, HOUR, QUARANTINE_FOLDER))
+                .processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+        try (Store store = connect()) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            assertTrue(inbox.getMessage(1).getFlags().contains("pass-failures-1"));
+            inbox.close(false);
+        }
+
+        //a fresh service picks up the count from the message, and only has two attempts left
+        NihmsEmailService restarted = newService(new MessageQuarantine(3, 0, 0, QUARANTINE_FOLDER));
+        restarted.processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+        assertTrue(restarted.getQuarantine().getQuarantinedMessages().isEmpty());
+        restarted.processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+
+        List<MessageQuarantine.FailureRecord> report = restarted.getQuarantine().getQuarantinedMessages();
+        assertEquals(1, report.size());
+        assertEquals(3, report.get(0).getFailureCount());
+    }
+
+    @Test
+    public void testExhaustedMessageWithoutFolderIsFlaggedSeen() throws MessagingException {
+        deliverMalformed("Bulk submission errors", MALFORMED_MESSAGE_ID);
+        NihmsEmailService underTest = newService(new MessageQuarantine(1, 0, 0, null));
+
+        underTest.processEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+
+        try (Store store = connect()) {
+            assertFalse(store.getFolder(QUARANTINE_FOLDER).exists());
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            assertEquals(1, inbox.getMessageCount());
+            Flags flags = inbox.getMessage(1).getFlags();
+            assertTrue(flags.contains(Flags.Flag.SEEN));
+            assertFalse(flags.contains(Flags.Flag.DELETED));
+            inbox.close(false);
+        }
+
+        List<MessageQuarantine.FailureRecord> report = underTest.getQuarantine().getQuarantinedMessages();
+        assertEquals(1, report.size());
+        assertFalse(report.get(0).isMovedToFolder());
+    }
+
+    @Test
+    public void testFailedMessageIsSkippedUntilRetryIsDue() throws MessagingException {
+        deliverMalformed("Bulk submission errors", MALFORMED_MESSAGE_ID);
+        NihmsEmailService underTest = newService(new MessageQuarantine(2, HOUR, HOUR, QUARANTINE_FOLDER));
+
+        assertEquals(Arrays.asList(MALFORMED_MESSAGE_ID), runPass(underTest));
+        assertTrue(runPass(underTest).isEmpty());
+
+        try (Store store = connect()) {
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            assertFalse(inbox.getMessage(1).getFlags().contains(Flags.Flag.SEEN));
+            inbox.close(false);
+        }
+        assertTrue(underTest.getQuarantine().getQuarantinedMessages().isEmpty());
+    }
+
+    private NihmsEmailService newService(MessageQuarantine quarantine) {
+        return new NihmsEmailService(quarantine, DummySSLSocketFactory.class.getName());
+    }
+
+    /**
+     * Fetch and process the emails, as a scheduled run would
+     *
+     * @param underTest the service to run
+     * @return the Message-IDs of the emails which were fetched
+     */
+    private List<String> runPass(NihmsEmailService underTest) throws MessagingException {
+        List<Message> emails = underTest.getEmails(PROTOCOL, HOST, PORT, USER, PASSWORD);
+        String[] messageIds = new String[emails.size()];
+        for (int i = 0; i < emails.size(); i++) {
+            underTest.processMessage(emails.get(i));
+            String[] header = emails.get(i).getHeader("Message-ID");
+            messageIds[i] = header == null ? null : header[0];
+        }
+        return Arrays.asList(messageIds);
+    }
+
+    /**
+     * Deliver a message whose only body part is binary, where the service expects text
+     *
+     * @param subject the subject of the message
+     * @param messageId the Message-ID of the message, or null for none; it is sent as "Message-Id"
+     */
+    private void deliverMalformed(String subject, String messageId) throws MessagingException {
+        String message =
+                (messageId == null ? "" : "Message-Id: " + messageId + "\r\n") +
+                "Subject: " + subject + "\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/mixed; boundary=\"BOUNDARY\"\r\n" +
+                "\r\n" +
+                "--BOUNDARY\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: base64\r\n" +
+                "\r\n" +
+                "AAECAw==\r\n" +
+                "--BOUNDARY--\r\n";
+        user.deliver(new MimeMessage(session, new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    private void deliverFile(String fileName) throws MessagingException {
+        user.deliver(new MimeMessage(session, getClass().getClassLoader().getResourceAsStream(fileName)));
+    }
+
+    private Message findMessage(Folder folder, String messageId) throws MessagingException {
+        for (Message message : folder.getMessages()) {
+            String[] header = message.getHeader("Message-ID");
+            if (header != null && header[0].equals(messageId)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private Store connect() throws MessagingException {
+        Store store = greenMail.getImaps().createStore();
+        store.connect(USER, PASSWORD);
+        return store;
+    }
+}
@@ -19,10 +19,13 @@ import org.dataconservancy.pass.email.service.model.NihmsSubmissionMessage;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -35,6 +38,7 @@ import java.util.TimeZone;
 
 import static java.util.Locale.US;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 
@@ -203,6 +207,40 @@ public class NihmsEmailServiceTest {
         }
     }
 
+    @Test
+    public void testUnparseableMessageIsTrackedForQuarantine() throws MessagingException {
+        String messageId = "<20180626010203.ABCDEF01234@mail2.ncbi.nlm.nih.gov>";
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties(), null));
+        message.setSubject("Bulk submission errors");
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(new byte[] {0, 1, 2}, "application/octet-stream");
+        message.setContent(new MimeMultipart(part));
+        message.setHeader("Message-ID", messageId);
+
+        assertTrue(underTest.processMessage(message).isEmpty());
+        assertFalse(underTest.getQuarantine().isRetryDue(messageId));
+
+        //a parseable message leaves no trace in the quarantine
+        Message good = getMessageFromFile(messages[6]);
+        assertEquals(2, underTest.processMessage(good).size());
+        assertTrue(underTest.getQuarantine().isRetryDue("<20180625174642.E2F101A0002@mail2.ncbi.nlm.nih.gov>"));
+    }
+
+    @Test
+    public void testTransientFailureIsNotCountedAgainstMessage() throws MessagingException {
+        String messageId = "<20180626010203.ABCDEF01234@mail2.ncbi.nlm.nih.gov>";
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties(), null)) {
+            @Override
+            public Object getContent() throws MessagingException {
+                throw new FolderClosedException(null, "connection lost");
+            }
+        };
+        message.setHeader("Message-ID", messageId);
+
+        assertTrue(underTest.processMessage(message).isEmpty());
+        assertTrue(underTest.getQuarantine().isRetryDue(messageId));
+    }
+
     private Message getMessageFromFile(String fileName) throws MessagingException {
         InputStream mailFileInputStream = this.getClass().getClassLoader().getResourceAsStream(fileName);
         Properties props = new Properties();